@@ -4,7 +4,14 @@ import java.io.*;
 import java.net.*;
 import java.time.*;
 import java.time.format.*;
+import java.time.temporal.*;
+import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
 import java.text.*;
 
 /**
@@ -248,13 +255,1289 @@ class Product {
     }
 }
 
+/**
+ * Represents a time partition of the product store that holds every transaction
+ * invoiced within a single calendar month, together with the min/max statistics
+ * and pre-aggregates used to prune and answer date range queries.
+ */
+class ProductPartition {
+    private YearMonth month;
+    private List<Product> products = new ArrayList<>();
+    private LocalDateTime minInvoiceDate;
+    private LocalDateTime maxInvoiceDate;
+    private long totalQuantity;
+    private double totalRevenue;
+
+    /**
+     * Parameterized constructor for ProductPartition class
+     *
+     * @param month Calendar month covered by this partition
+     */
+    public ProductPartition(YearMonth month) {
+        this.month = month;
+    }
+
+    /**
+     * Adds a single transaction to this partition and updates its statistics.
+     *
+     * @param product The product transaction to add.
+     */
+    public void add(Product product) {
+        LocalDateTime date = product.getInvoiceDate().get(0);
+        int quantity = product.getQuantity().get(0);
+
+        products.add(product);
+        if (minInvoiceDate == null || date.isBefore(minInvoiceDate))
+            minInvoiceDate = date;
+        if (maxInvoiceDate == null || date.isAfter(maxInvoiceDate))
+            maxInvoiceDate = date;
+        totalQuantity += quantity;
+        totalRevenue += quantity * product.getUnitPrice().get(0);
+    }
+
+    /**
+     * Checks whether any transaction of this partition may fall within the given
+     * range.
+     *
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return true if the partition has to be scanned, false if it can be skipped.
+     */
+    public boolean overlaps(LocalDateTime from, LocalDateTime to) {
+        return !products.isEmpty() && minInvoiceDate.isBefore(to) && !maxInvoiceDate.isBefore(from);
+    }
+
+    /**
+     * Checks whether every transaction of this partition falls within the given
+     * range, so that its pre-aggregates can be used without scanning it.
+     *
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return true if the partition is fully covered by the range.
+     */
+    public boolean isCoveredBy(LocalDateTime from, LocalDateTime to) {
+        return !products.isEmpty() && !minInvoiceDate.isBefore(from) && maxInvoiceDate.isBefore(to);
+    }
+
+    /**
+     * Retrieves the calendar month covered by this partition.
+     *
+     * @return Month of the partition.
+     */
+    public YearMonth getMonth() {
+        return month;
+    }
+
+    /**
+     * Retrieves the transactions stored in this partition.
+     *
+     * @return List of products.
+     */
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * Retrieves the earliest invoice date stored in this partition.
+     *
+     * @return Minimum invoice date, or null if the partition is empty.
+     */
+    public LocalDateTime getMinInvoiceDate() {
+        return minInvoiceDate;
+    }
+
+    /**
+     * Retrieves the latest invoice date stored in this partition.
+     *
+     * @return Maximum invoice date, or null if the partition is empty.
+     */
+    public LocalDateTime getMaxInvoiceDate() {
+        return maxInvoiceDate;
+    }
+
+    /**
+     * Retrieves the total quantity of products sold within this partition.
+     *
+     * @return Total quantity.
+     */
+    public long getTotalQuantity() {
+        return totalQuantity;
+    }
+
+    /**
+     * Retrieves the total revenue within this partition.
+     *
+     * @return Total revenue.
+     */
+    public double getTotalRevenue() {
+        return totalRevenue;
+    }
+}
+
+/**
+ * Maps every distinct string of a column to a compact int code, so that each
+ * value is stored once and can be counted or looked up through arrays instead
+ * of hashing the string on every row. Codes are assigned in first-seen order
+ * and are never reused.
+ */
+class StringDictionary {
+    private Map<String, Integer> codes = new HashMap<>();
+    private List<String> values = new ArrayList<>();
+
+    /**
+     * Retrieves the code of a value, assigning the next free code if the value
+     * has not been seen before.
+     *
+     * @param value The value to encode.
+     * @return Code of the value.
+     */
+    public int encode(String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    /**
+     * Retrieves the code of a value without assigning a new one.
+     *
+     * @param value The value to look up.
+     * @return Code of the value, or -1 if the value is unknown.
+     */
+    public int codeOf(String value) {
+        return codes.getOrDefault(value, -1);
+    }
+
+    /**
+     * Retrieves the shared string instance of a code.
+     *
+     * @param code The code to decode.
+     * @return Value of the code.
+     */
+    public String decode(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * Retrieves the number of distinct values in the dictionary.
+     *
+     * @return Number of codes.
+     */
+    public int size() {
+        return values.size();
+    }
+}
+
+/**
+ * Maps every distinct int value of a column, such as CustomerID, to a dense
+ * code, so that per-value accumulators can be sized by the number of distinct
+ * values instead of the range of the values. Codes are assigned in first-seen
+ * order and are never reused.
+ */
+class IntDictionary {
+    private Map<Integer, Integer> codes = new HashMap<>();
+    private IntColumn values = new IntColumn();
+
+    /**
+     * Retrieves the code of a value, assigning the next free code if the value
+     * has not been seen before.
+     *
+     * @param value The value to encode.
+     * @return Code of the value.
+     */
+    public int encode(int value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    /**
+     * Retrieves the value of a code.
+     *
+     * @param code The code to decode.
+     * @return Value of the code.
+     */
+    public int decode(int code) {
+        return values.get(code);
+    }
+
+    /**
+     * Retrieves the number of distinct values in the dictionary.
+     *
+     * @return Number of codes.
+     */
+    public int size() {
+        return values.size();
+    }
+}
+
+/**
+ * Growable column of primitive ints, used to keep the dictionary codes of each
+ * row without boxing them.
+ */
+class IntColumn {
+    private int[] values = new int[1024];
+    private int size;
+
+    /**
+     * Appends a value to the end of the column.
+     *
+     * @param value The value to append.
+     */
+    public void add(int value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    /**
+     * Retrieves the value at the given row.
+     *
+     * @param index Row index.
+     * @return Value of the row.
+     */
+    public int get(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException(index);
+        return values[index];
+    }
+
+    /**
+     * Retrieves the number of rows in the column.
+     *
+     * @return Number of rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every row from the column.
+     */
+    public void clear() {
+        size = 0;
+    }
+}
+
+/**
+ * Bounded lock-free ring buffer for a single producer and multiple consumers.
+ * The producer waits while the buffer is full and consumers claim slots by
+ * advancing the shared head with a compare-and-set. Claimed slots are not
+ * cleared, since the producer may already be reusing them, so up to capacity
+ * consumed items stay referenced until they are overwritten.
+ *
+ * @param <T> Type of the buffered items.
+ */
+class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private volatile boolean closed;
+
+    /**
+     * Parameterized constructor for RingBuffer class
+     *
+     * @param capacity Minimum number of slots, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Publishes an item, waiting while the buffer is full. Must only be called
+     * from the producer thread.
+     *
+     * @param item The item to publish.
+     * @throws InterruptedException If the producer is interrupted while waiting.
+     */
+    public void put(T item) throws InterruptedException {
+        long t = tail;
+        for (int spins = 0; t - head.get() >= slots.length(); spins++) {
+            idle(spins);
+        }
+        slots.set((int) t & mask, item);
+        tail = t + 1;
+    }
+
+    /**
+     * Marks the end of the stream. Consumers drain the remaining items and then
+     * receive null.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Claims the next item, waiting while the buffer is empty.
+     *
+     * @return The next item, or null once the buffer is closed and drained.
+     * @throws InterruptedException If the consumer is interrupted while waiting.
+     */
+    public T take() throws InterruptedException {
+        for (int spins = 0;; spins++) {
+            long h = head.get();
+            if (h < tail) {
+                int index = (int) h & mask;
+                T item = slots.get(index);
+                if (head.compareAndSet(h, h + 1))
+                    return item;
+            } else if (closed && h >= tail) {
+                return null;
+            } else {
+                idle(spins);
+            }
+        }
+    }
+
+    /**
+     * Backs off while waiting for the other side of the buffer: spins briefly,
+     * then parks the thread for a short time.
+     *
+     * @param spins Number of times the caller has already waited.
+     * @throws InterruptedException If the thread has been interrupted.
+     */
+    private static void idle(int spins) throws InterruptedException {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (spins < 100)
+            Thread.onSpinWait();
+        else
+            LockSupport.parkNanos(50_000);
+    }
+}
+
+/**
+ * Loads CSV rows from a stream that cannot be memory-mapped, such as an HTTP
+ * download or stdin, by overlapping I/O and parsing in separate stages:
+ * <ul>
+ * <li>a reader thread cuts the stream into byte batches on line boundaries and
+ * publishes them to a {@link RingBuffer},</li>
+ * <li>parser workers turn each batch into rows,</li>
+ * <li>the calling thread merges the parsed batches back in stream order.</li>
+ * </ul>
+ * The number of batches in flight across all stages is bounded, so a slow
+ * consumer throttles the reader instead of growing memory.
+ */
+class CSVPipeline {
+    private static final int BATCH_SIZE = 64 * 1024;
+
+    private final int workers;
+    private final int capacity;
+
+    /**
+     * A range of raw bytes that only contains complete lines.
+     */
+    private static class Batch {
+        final long sequence;
+        final byte[] data;
+        final int start;
+        final int end;
+
+        Batch(long sequence, byte[] data, int start, int end) {
+            this.sequence = sequence;
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * The rows parsed from a single batch. A null list marks a finished worker.
+     */
+    private static class ParsedBatch<R> {
+        final long sequence;
+        final List<R> rows;
+
+        ParsedBatch(long sequence, List<R> rows) {
+            this.sequence = sequence;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Parameterized constructor for CSVPipeline class
+     *
+     * @param workers  Number of parser workers
+     * @param capacity Maximum number of batches in flight
+     */
+    public CSVPipeline(int workers, int capacity) {
+        this.workers = Math.max(1, workers);
+        this.capacity = Math.max(2, capacity);
+    }
+
+    /**
+     * Reads every line after the header from the stream, parses it on the
+     * worker threads and passes the rows to the aggregator in stream order.
+     *
+     * @param <R>        Type of the parsed rows.
+     * @param in         The stream to read.
+     * @param parser     Parses a single line, returning null to skip it. Called
+     *                   concurrently from the worker threads.
+     * @param aggregator Receives every parsed row on the calling thread.
+     * @throws IOException          If the stream cannot be read.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public <R> void run(InputStream in, Function<String, R> parser, Consumer<R> aggregator)
+            throws IOException, InterruptedException {
+        RingBuffer<Batch> batches = new RingBuffer<>(capacity);
+        BlockingQueue<ParsedBatch<R>> parsed = new ArrayBlockingQueue<>(capacity + workers);
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(capacity + 1);
+        Semaphore inFlight = new Semaphore(capacity);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        threads.add(new Thread(() -> {
+            try {
+                read(in, batches, buffers, inFlight);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                batches.close();
+            }
+        }, "csv-reader"));
+
+        for (int i = 0; i < workers; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    Batch batch;
+                    while ((batch = batches.take()) != null) {
+                        List<R> rows = parse(batch, parser);
+                        if (batch.data.length == BATCH_SIZE)
+                            buffers.offer(batch.data);
+                        parsed.put(new ParsedBatch<>(batch.sequence, rows));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    try {
+                        parsed.put(new ParsedBatch<>(-1, null));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "csv-parser-" + i));
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            Map<Long, List<R>> pending = new HashMap<>();
+            long next = 0;
+            int finished = 0;
+            while (finished < workers && failure.get() == null) {
+                ParsedBatch<R> batch = parsed.take();
+                if (batch.rows == null) {
+                    finished++;
+                    continue;
+                }
+
+                pending.put(batch.sequence, batch.rows);
+                List<R> rows;
+                while ((rows = pending.remove(next)) != null) {
+                    rows.forEach(aggregator);
+                    inFlight.release();
+                    next++;
+                }
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        if (e != null)
+            throw new IOException(e);
+    }
+
+    /**
+     * Reader stage: fills a buffer until it is full or the stream ends, publishes
+     * everything up to the last line break as one batch and carries the partial
+     * line over to the next buffer. The header line is dropped. Buffers returned
+     * by the parser workers are reused.
+     *
+     * @param in       The stream to read.
+     * @param batches  Ring buffer receiving the batches.
+     * @param buffers  Pool of parsed buffers that can be reused.
+     * @param inFlight Permits limiting the number of batches in flight.
+     * @throws IOException          If the stream cannot be read.
+     * @throws InterruptedException If the reader is interrupted while waiting.
+     */
+    private static void read(InputStream in, RingBuffer<Batch> batches, BlockingQueue<byte[]> buffers,
+            Semaphore inFlight) throws IOException, InterruptedException {
+        byte[] buffer = nextBuffer(buffers);
+        int length = 0;
+        long sequence = 0;
+        boolean header = true;
+        boolean eof = false;
+
+        while (!eof) {
+            while (length < buffer.length) {
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                length += n;
+            }
+
+            int start = 0;
+            if (header) {
+                int eol = indexOfNewline(buffer, 0, length);
+                if (eol < 0) {
+                    // The header does not fit into the buffer yet
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                header = false;
+                start = eol + 1;
+            }
+
+            int end = eof ? length : lastIndexOfNewline(buffer, start, length) + 1;
+            if (end <= start) {
+                if (!eof) {
+                    // A single line is longer than the buffer
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, start, larger, 0, length - start);
+                    length -= start;
+                    buffer = larger;
+                }
+                continue;
+            }
+
+            byte[] next = nextBuffer(buffers);
+            if (next.length < length - end)
+                next = new byte[(length - end) * 2];
+            System.arraycopy(buffer, end, next, 0, length - end);
+
+            inFlight.acquire();
+            batches.put(new Batch(sequence++, buffer, start, end));
+            length -= end;
+            buffer = next;
+        }
+    }
+
+    /**
+     * Takes a reusable buffer from the pool, or allocates a new one.
+     *
+     * @param buffers Pool of buffers returned by the parser workers.
+     * @return An empty buffer of at least BATCH_SIZE bytes.
+     */
+    private static byte[] nextBuffer(BlockingQueue<byte[]> buffers) {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BATCH_SIZE];
+    }
+
+    /**
+     * Parser stage: decodes every line of a batch and parses it into a row.
+     *
+     * @param <R>    Type of the parsed rows.
+     * @param batch  The batch to parse.
+     * @param parser Parses a single line.
+     * @return The parsed rows in line order.
+     */
+    private static <R> List<R> parse(Batch batch, Function<String, R> parser) {
+        List<R> rows = new ArrayList<>();
+        int start = batch.start;
+
+        while (start < batch.end) {
+            int eol = indexOfNewline(batch.data, start, batch.end);
+            int end = eol < 0 ? batch.end : eol;
+            if (end > start && batch.data[end - 1] == '\r')
+                end--;
+
+            if (end > start) {
+                R row = parser.apply(new String(batch.data, start, end - start, StandardCharsets.UTF_8));
+                if (row != null)
+                    rows.add(row);
+            }
+            start = eol < 0 ? batch.end : eol + 1;
+        }
+
+        return rows;
+    }
+
+    /**
+     * Finds the first line break within a range of bytes.
+     *
+     * @param data The bytes to search.
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return Index of the first '\n', or -1 if there is none.
+     */
+    private static int indexOfNewline(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the last line break within a range of bytes.
+     *
+     * @param data The bytes to search.
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return Index of the last '\n', or -1 if there is none.
+     */
+    private static int lastIndexOfNewline(byte[] data, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (data[i] == '\n')
+                return i;
+        }
+        return -1;
+    }
+}
+
+/**
+ * Sparse accumulator of quantity and revenue per dictionary code, holding one
+ * time bucket of a {@link TimeSeriesRollup}. Codes are kept in an
+ * open-addressing table of primitive arrays to avoid boxing.
+ */
+class RollupCell {
+    private int[] codes = new int[8];
+    private long[] quantity = new long[8];
+    private double[] revenue = new double[8];
+    private int size;
+    private long totalQuantity;
+    private double totalRevenue;
+
+    /**
+     * Default constructor.
+     */
+    public RollupCell() {
+        Arrays.fill(codes, -1);
+    }
+
+    /**
+     * Adds quantity and revenue to the given code.
+     *
+     * @param code     Dictionary code of the dimension value.
+     * @param quantity Quantity to add.
+     * @param revenue  Revenue to add.
+     */
+    public void add(int code, long quantity, double revenue) {
+        if ((size + 1) * 2 > codes.length)
+            grow();
+
+        int slot = slot(code);
+        if (codes[slot] < 0) {
+            codes[slot] = code;
+            size++;
+        }
+        this.quantity[slot] += quantity;
+        this.revenue[slot] += revenue;
+        totalQuantity += quantity;
+        totalRevenue += revenue;
+    }
+
+    /**
+     * Adds every code of another cell to this cell.
+     *
+     * @param other The cell to merge.
+     */
+    public void addAll(RollupCell other) {
+        for (int i = 0; i < other.codes.length; i++) {
+            if (other.codes[i] >= 0)
+                add(other.codes[i], other.quantity[i], other.revenue[i]);
+        }
+    }
+
+    /**
+     * Retrieves the quantity accumulated for a code.
+     *
+     * @param code Dictionary code of the dimension value.
+     * @return Quantity, or 0 if the code has no entries.
+     */
+    public long getQuantity(int code) {
+        int slot = code < 0 ? -1 : slot(code);
+        return slot < 0 || codes[slot] < 0 ? 0 : quantity[slot];
+    }
+
+    /**
+     * Retrieves the revenue accumulated for a code.
+     *
+     * @param code Dictionary code of the dimension value.
+     * @return Revenue, or 0 if the code has no entries.
+     */
+    public double getRevenue(int code) {
+        int slot = code < 0 ? -1 : slot(code);
+        return slot < 0 || codes[slot] < 0 ? 0 : revenue[slot];
+    }
+
+    /**
+     * Retrieves the quantity accumulated over all codes.
+     *
+     * @return Total quantity.
+     */
+    public long getTotalQuantity() {
+        return totalQuantity;
+    }
+
+    /**
+     * Retrieves the revenue accumulated over all codes.
+     *
+     * @return Total revenue.
+     */
+    public double getTotalRevenue() {
+        return totalRevenue;
+    }
+
+    /**
+     * Finds the slot of a code by linear probing.
+     *
+     * @param code Dictionary code of the dimension value.
+     * @return Slot holding the code, or the empty slot where it would be added.
+     */
+    private int slot(int code) {
+        int mask = codes.length - 1;
+        int slot = (code * 0x9E3779B9) >>> 16 & mask;
+        while (codes[slot] >= 0 && codes[slot] != code)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Doubles the table and re-inserts every code.
+     */
+    private void grow() {
+        int[] oldCodes = codes;
+        long[] oldQuantity = quantity;
+        double[] oldRevenue = revenue;
+
+        codes = new int[oldCodes.length * 2];
+        quantity = new long[codes.length];
+        revenue = new double[codes.length];
+        Arrays.fill(codes, -1);
+
+        for (int i = 0; i < oldCodes.length; i++) {
+            if (oldCodes[i] >= 0) {
+                int slot = slot(oldCodes[i]);
+                codes[slot] = oldCodes[i];
+                quantity[slot] = oldQuantity[i];
+                revenue[slot] = oldRevenue[i];
+            }
+        }
+    }
+}
+
+/**
+ * Pre-aggregated quantity and revenue of one dimension (such as Country or
+ * StockCode) at hour, day and month granularity, maintained while products are
+ * ingested. Range queries are answered from the coarsest level that covers each
+ * part of the range, so a year-long range only touches a few dozen cells.
+ */
+class TimeSeriesRollup {
+    private NavigableMap<Long, RollupCell> hours = new TreeMap<>();
+    private NavigableMap<Long, RollupCell> days = new TreeMap<>();
+    private NavigableMap<Long, RollupCell> months = new TreeMap<>();
+
+    /**
+     * Adds a single transaction to every level of the rollup.
+     *
+     * @param date     Invoice date of the transaction.
+     * @param code     Dictionary code of the dimension value.
+     * @param quantity Quantity sold.
+     * @param revenue  Revenue of the transaction.
+     */
+    public void add(LocalDateTime date, int code, int quantity, double revenue) {
+        hours.computeIfAbsent(bucketOf(date, ChronoUnit.HOURS), k -> new RollupCell()).add(code, quantity, revenue);
+        days.computeIfAbsent(bucketOf(date, ChronoUnit.DAYS), k -> new RollupCell()).add(code, quantity, revenue);
+        months.computeIfAbsent(bucketOf(date, ChronoUnit.MONTHS), k -> new RollupCell()).add(code, quantity, revenue);
+    }
+
+    /**
+     * Removes every bucket from the rollup.
+     */
+    public void clear() {
+        hours.clear();
+        days.clear();
+        months.clear();
+    }
+
+    /**
+     * Aggregates every code over the given range, at hour precision.
+     *
+     * @param from Start of the range (inclusive), truncated to the hour.
+     * @param to   End of the range (exclusive), truncated to the hour.
+     * @return A cell holding the totals of the range.
+     */
+    public RollupCell query(LocalDateTime from, LocalDateTime to) {
+        RollupCell result = new RollupCell();
+        for (RollupCell cell : covering(from, to)) {
+            result.addAll(cell);
+        }
+        return result;
+    }
+
+    /**
+     * Sums the quantity of a single code over the given range, at hour precision.
+     *
+     * @param code Dictionary code of the dimension value.
+     * @param from Start of the range (inclusive), truncated to the hour.
+     * @param to   End of the range (exclusive), truncated to the hour.
+     * @return Total quantity of the code.
+     */
+    public long queryQuantity(int code, LocalDateTime from, LocalDateTime to) {
+        long total = 0;
+        for (RollupCell cell : covering(from, to)) {
+            total += cell.getQuantity(code);
+        }
+        return total;
+    }
+
+    /**
+     * Sums the revenue of a single code over the given range, at hour precision.
+     *
+     * @param code Dictionary code of the dimension value.
+     * @param from Start of the range (inclusive), truncated to the hour.
+     * @param to   End of the range (exclusive), truncated to the hour.
+     * @return Total revenue of the code.
+     */
+    public double queryRevenue(int code, LocalDateTime from, LocalDateTime to) {
+        double total = 0;
+        for (RollupCell cell : covering(from, to)) {
+            total += cell.getRevenue(code);
+        }
+        return total;
+    }
+
+    /**
+     * Collects the cells that exactly cover the given range, at hour precision.
+     * The range is split into leading and trailing hours and days around the
+     * whole months it contains, and each part is taken from its own level.
+     *
+     * @param from Start of the range (inclusive), truncated to the hour.
+     * @param to   End of the range (exclusive), truncated to the hour.
+     * @return The covering cells.
+     */
+    private List<RollupCell> covering(LocalDateTime from, LocalDateTime to) {
+        List<RollupCell> cells = new ArrayList<>();
+        LocalDateTime lo = from.truncatedTo(ChronoUnit.HOURS);
+        LocalDateTime hi = to.truncatedTo(ChronoUnit.HOURS);
+        if (!lo.isBefore(hi))
+            return cells;
+
+        LocalDateTime dayLo = ceilDay(lo);
+        LocalDateTime dayHi = hi.truncatedTo(ChronoUnit.DAYS);
+        if (!dayLo.isBefore(dayHi)) {
+            collect(cells, hours, lo, hi, ChronoUnit.HOURS);
+            return cells;
+        }
+        collect(cells, hours, lo, dayLo, ChronoUnit.HOURS);
+        collect(cells, hours, dayHi, hi, ChronoUnit.HOURS);
+
+        LocalDateTime monthLo = ceilMonth(dayLo);
+        LocalDateTime monthHi = dayHi.withDayOfMonth(1);
+        if (!monthLo.isBefore(monthHi)) {
+            collect(cells, days, dayLo, dayHi, ChronoUnit.DAYS);
+            return cells;
+        }
+        collect(cells, days, dayLo, monthLo, ChronoUnit.DAYS);
+        collect(cells, months, monthLo, monthHi, ChronoUnit.MONTHS);
+        collect(cells, days, monthHi, dayHi, ChronoUnit.DAYS);
+        return cells;
+    }
+
+    /**
+     * Retrieves the buckets of one level that overlap the given range.
+     *
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @param unit Granularity of the buckets: HOURS, DAYS or MONTHS.
+     * @return The cells of the range keyed by bucket, in time order.
+     */
+    public NavigableMap<Long, RollupCell> series(LocalDateTime from, LocalDateTime to, ChronoUnit unit) {
+        if (!from.isBefore(to))
+            return new TreeMap<>();
+        return level(unit).subMap(bucketOf(from, unit), true, bucketOf(to.minusNanos(1), unit), true);
+    }
+
+    /**
+     * Retrieves the bucket that contains a date.
+     *
+     * @param date The date.
+     * @param unit Granularity of the bucket: HOURS, DAYS or MONTHS.
+     * @return Bucket index.
+     */
+    public static long bucketOf(LocalDateTime date, ChronoUnit unit) {
+        switch (unit) {
+            case HOURS:
+                return Math.floorDiv(date.toEpochSecond(ZoneOffset.UTC), 3600);
+            case DAYS:
+                return date.toLocalDate().toEpochDay();
+            case MONTHS:
+                return date.getYear() * 12L + date.getMonthValue() - 1;
+            default:
+                throw new IllegalArgumentException("Unsupported rollup unit: " + unit);
+        }
+    }
+
+    /**
+     * Retrieves the start of a bucket.
+     *
+     * @param bucket Bucket index.
+     * @param unit   Granularity of the bucket: HOURS, DAYS or MONTHS.
+     * @return Date and time the bucket starts at.
+     */
+    public static LocalDateTime startOf(long bucket, ChronoUnit unit) {
+        switch (unit) {
+            case HOURS:
+                return LocalDateTime.ofEpochSecond(bucket * 3600, 0, ZoneOffset.UTC);
+            case DAYS:
+                return LocalDate.ofEpochDay(bucket).atStartOfDay();
+            case MONTHS:
+                return LocalDate.of((int) Math.floorDiv(bucket, 12), Math.floorMod(bucket, 12) + 1, 1)
+                        .atStartOfDay();
+            default:
+                throw new IllegalArgumentException("Unsupported rollup unit: " + unit);
+        }
+    }
+
+    /**
+     * Retrieves the buckets of one granularity.
+     *
+     * @param unit Granularity of the buckets: HOURS, DAYS or MONTHS.
+     * @return The buckets of the level.
+     */
+    private NavigableMap<Long, RollupCell> level(ChronoUnit unit) {
+        switch (unit) {
+            case HOURS:
+                return hours;
+            case DAYS:
+                return days;
+            case MONTHS:
+                return months;
+            default:
+                throw new IllegalArgumentException("Unsupported rollup unit: " + unit);
+        }
+    }
+
+    /**
+     * Adds the cells of one level whose buckets start within the given range.
+     *
+     * @param cells Receives the cells.
+     * @param level The buckets of the level.
+     * @param from  Start of the range (inclusive), aligned to the unit.
+     * @param to    End of the range (exclusive), aligned to the unit.
+     * @param unit  Granularity of the level.
+     */
+    private static void collect(List<RollupCell> cells, NavigableMap<Long, RollupCell> level, LocalDateTime from,
+            LocalDateTime to, ChronoUnit unit) {
+        if (from.isBefore(to)) {
+            cells.addAll(level.subMap(bucketOf(from, unit), true, bucketOf(to, unit), false).values());
+        }
+    }
+
+    /**
+     * Rounds a date up to the start of a day.
+     *
+     * @param date The date.
+     * @return The date itself if it starts a day, otherwise the start of the next day.
+     */
+    private static LocalDateTime ceilDay(LocalDateTime date) {
+        LocalDateTime day = date.truncatedTo(ChronoUnit.DAYS);
+        return day.equals(date) ? day : day.plusDays(1);
+    }
+
+    /**
+     * Rounds a date up to the start of a month.
+     *
+     * @param date The date.
+     * @return The date itself if it starts a month, otherwise the start of the next month.
+     */
+    private static LocalDateTime ceilMonth(LocalDateTime date) {
+        LocalDateTime month = date.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+        return month.equals(date) ? month : month.plusMonths(1);
+    }
+}
+
+/**
+ * Represents the recency, frequency and monetary (RFM) metrics of a customer
+ * together with their quintile scores, where 5 is the best score.
+ */
+class CustomerRFM {
+    private int customerID;
+    private int recency;
+    private int frequency;
+    private double monetary;
+    private int recencyScore;
+    private int frequencyScore;
+    private int monetaryScore;
+
+    /**
+     * Parameterized constructor for CustomerRFM class
+     * 
+     * @param customerID Customer ID
+     * @param recency    Days since the last purchase
+     * @param frequency  Number of distinct purchase invoices
+     * @param monetary   Net amount spent
+     */
+    public CustomerRFM(int customerID, int recency, int frequency, double monetary) {
+        this.customerID = customerID;
+        this.recency = recency;
+        this.frequency = frequency;
+        this.monetary = monetary;
+    }
+
+    /**
+     * Retrieves the customer ID.
+     * 
+     * @return Customer ID.
+     */
+    public int getCustomerID() {
+        return customerID;
+    }
+
+    /**
+     * Retrieves the number of days since the last purchase.
+     * 
+     * @return Recency in days.
+     */
+    public int getRecency() {
+        return recency;
+    }
+
+    /**
+     * Retrieves the number of distinct purchase invoices.
+     * 
+     * @return Frequency.
+     */
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * Retrieves the net amount spent, after returns.
+     * 
+     * @return Monetary value.
+     */
+    public double getMonetary() {
+        return monetary;
+    }
+
+    /**
+     * Retrieves the recency score.
+     * 
+     * @return Score from 1 to 5.
+     */
+    public int getRecencyScore() {
+        return recencyScore;
+    }
+
+    /**
+     * Retrieves the frequency score.
+     * 
+     * @return Score from 1 to 5.
+     */
+    public int getFrequencyScore() {
+        return frequencyScore;
+    }
+
+    /**
+     * Retrieves the monetary score.
+     * 
+     * @return Score from 1 to 5.
+     */
+    public int getMonetaryScore() {
+        return monetaryScore;
+    }
+
+    /**
+     * Retrieves the combined RFM segment, such as "545".
+     * 
+     * @return RFM segment.
+     */
+    public String getSegment() {
+        return "" + recencyScore + frequencyScore + monetaryScore;
+    }
+
+    /**
+     * Sets the quintile scores of the customer.
+     * 
+     * @param recencyScore   Recency score to set.
+     * @param frequencyScore Frequency score to set.
+     * @param monetaryScore  Monetary score to set.
+     */
+    public void setScores(int recencyScore, int frequencyScore, int monetaryScore) {
+        this.recencyScore = recencyScore;
+        this.frequencyScore = frequencyScore;
+        this.monetaryScore = monetaryScore;
+    }
+
+    /**
+     * Overrides the toString method to generate a formatted string representation
+     * of the customer metrics in a tabular format.
+     * 
+     * @return A string containing formatted customer metrics.
+     */
+    @Override
+    public String toString() {
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+
+        return String.format("| %-10s | %-7s | %-9s | %-14s | %-7s |",
+                customerID, recency, frequency, nf.format(monetary), getSegment());
+    }
+}
+
+/**
+ * Per-customer primitive accumulators for one chunk of the RFM pass. Customers
+ * and invoices are indexed by their dictionary codes.
+ */
+class RFMAccumulator {
+    private long[] lastPurchase;
+    private double[] monetary;
+    private int[] invoiceCustomer;
+    private long unknownRows;
+    private double unknownRevenue;
+
+    /**
+     * Parameterized constructor for RFMAccumulator class
+     * 
+     * @param customers Number of customer codes
+     * @param invoices  Number of invoice codes
+     */
+    public RFMAccumulator(int customers, int invoices) {
+        this.lastPurchase = new long[customers];
+        this.monetary = new double[customers];
+        this.invoiceCustomer = new int[invoices];
+        Arrays.fill(lastPurchase, Long.MIN_VALUE);
+        Arrays.fill(invoiceCustomer, -1);
+    }
+
+    /**
+     * Adds a single transaction. Rows without a customer (CustomerID 0) are only
+     * counted as unknown, and cancelled invoices only reduce the monetary value.
+     * 
+     * @param customerCode Dictionary code of the customer, or -1 if unknown.
+     * @param invoiceCode  Dictionary code of the invoice.
+     * @param cancelled    Whether the invoice is a cancellation.
+     * @param epochDay     Day of the invoice since the epoch.
+     * @param revenue      Revenue of the transaction.
+     */
+    public void add(int customerCode, int invoiceCode, boolean cancelled, long epochDay, double revenue) {
+        if (customerCode < 0) {
+            unknownRows++;
+            unknownRevenue += revenue;
+            return;
+        }
+
+        monetary[customerCode] += revenue;
+        if (!cancelled) {
+            invoiceCustomer[invoiceCode] = customerCode;
+            if (epochDay > lastPurchase[customerCode])
+                lastPurchase[customerCode] = epochDay;
+        }
+    }
+
+    /**
+     * Merges the accumulators of another chunk into this one.
+     * 
+     * @param other The accumulator to merge.
+     * @return This accumulator.
+     */
+    public RFMAccumulator merge(RFMAccumulator other) {
+        for (int i = 0; i < monetary.length; i++) {
+            monetary[i] += other.monetary[i];
+            lastPurchase[i] = Math.max(lastPurchase[i], other.lastPurchase[i]);
+        }
+        for (int i = 0; i < invoiceCustomer.length; i++) {
+            if (other.invoiceCustomer[i] >= 0)
+                invoiceCustomer[i] = other.invoiceCustomer[i];
+        }
+        unknownRows += other.unknownRows;
+        unknownRevenue += other.unknownRevenue;
+        return this;
+    }
+
+    /**
+     * Builds the RFM metrics of every customer with at least one purchase.
+     * 
+     * @param referenceDay Day since the epoch that recency is measured from.
+     * @param customerIDs  Dictionary of the customer codes.
+     * @return List of customer metrics, ordered by customer ID.
+     */
+    public List<CustomerRFM> toCustomers(long referenceDay, IntDictionary customerIDs) {
+        int[] frequency = new int[monetary.length];
+        for (int customerCode : invoiceCustomer) {
+            if (customerCode >= 0)
+                frequency[customerCode]++;
+        }
+
+        List<CustomerRFM> result = new ArrayList<>();
+        for (int i = 0; i < frequency.length; i++) {
+            if (frequency[i] > 0) {
+                int recency = (int) (referenceDay - lastPurchase[i]);
+                result.add(new CustomerRFM(customerIDs.decode(i), recency, frequency[i], monetary[i]));
+            }
+        }
+        result.sort(Comparator.comparingInt(CustomerRFM::getCustomerID));
+        return result;
+    }
+
+    /**
+     * Retrieves the number of rows without a customer.
+     * 
+     * @return Number of unknown customer rows.
+     */
+    public long getUnknownRows() {
+        return unknownRows;
+    }
+
+    /**
+     * Retrieves the revenue of the rows without a customer.
+     * 
+     * @return Unknown customer revenue.
+     */
+    public double getUnknownRevenue() {
+        return unknownRevenue;
+    }
+}
+
 // Controller class for managing product operations
 class ProductController {
     private List<Product> products = new ArrayList<>();
-    private Map<String, Integer> totalProductsSold = new HashMap<>();
-    private Map<String, Double> totalRevenue = new HashMap<>();
-    private Set<String> uniqueCountries = new HashSet<>();
-    private Map<String, Product> productsMap = new HashMap<>();
+    private int[] totalProductsSold = new int[0];
+    private double[] totalRevenue = new double[0];
+    private BitSet uniqueCountries = new BitSet();
+    private List<Product> productsMap = new ArrayList<>();
+
+    private StringDictionary invoiceNos = new StringDictionary();
+    private StringDictionary stockCodes = new StringDictionary();
+    private StringDictionary descriptions = new StringDictionary();
+    private StringDictionary countries = new StringDictionary();
+    private IntColumn rowStockCodes = new IntColumn();
+    private IntColumn rowCountries = new IntColumn();
+    private IntColumn rowInvoices = new IntColumn();
+    private IntDictionary customerIDs = new IntDictionary();
+    private IntColumn rowCustomers = new IntColumn();
+    private TimeSeriesRollup countryTrends = new TimeSeriesRollup();
+    private TimeSeriesRollup productTrends = new TimeSeriesRollup();
+    private NavigableMap<YearMonth, ProductPartition> partitions = new TreeMap<>();
+
+    private static final DateTimeFormatter CSV_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int PARSER_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+    private static final int PIPELINE_CAPACITY = 32;
 
     /**
      * Default constructor.
@@ -268,33 +1551,8 @@ class ProductController {
      * @param urlText Name of the CSV file.
      */
     public void LoadFromCSV(String urlText) {
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(new URI(urlText).toURL().openStream()))) {
-            String line;
-            br.readLine(); // skip header
-            while ((line = br.readLine()) != null) {
-                Product product = ParseCSVLine(line);
-                if (product != null) {
-                    products.add(product);
-                    uniqueCountries.addAll(product.getCountry());
-
-                    Product existingProduct = null;
-                    if (productsMap.containsKey(product.getStockCode())) {
-                        existingProduct = new Product(productsMap.get(product.getStockCode()));
-
-                        existingProduct.getInvoiceNo().addAll(product.getInvoiceNo());
-                        existingProduct.getQuantity().addAll(product.getQuantity());
-                        existingProduct.getInvoiceDate().addAll(product.getInvoiceDate());
-                        existingProduct.getUnitPrice().addAll(product.getUnitPrice());
-                        existingProduct.getCustomerID().addAll(product.getCustomerID());
-                        existingProduct.getCountry().addAll(product.getCountry());
-                    } else {
-                        existingProduct = new Product(product);
-                    }
-
-                    productsMap.put(product.getStockCode(), existingProduct);
-                }
-            }
+        try (InputStream in = new URI(urlText).toURL().openStream()) {
+            LoadFromStream(in);
         } catch (IOException e) {
             System.err.println("Error reading " + urlText);
         } catch (URISyntaxException e) {
@@ -302,6 +1560,285 @@ class ProductController {
         }
     }
 
+    /**
+     * Loads product data in CSV format from a stream, such as stdin.
+     * Reading, parsing and indexing run as separate pipeline stages so that the
+     * stream is downloaded while earlier lines are being parsed.
+     * 
+     * @param in The stream to read, including the header line.
+     * @throws IOException If the stream cannot be read.
+     */
+    public void LoadFromStream(InputStream in) throws IOException {
+        try {
+            new CSVPipeline(PARSER_WORKERS, PIPELINE_CAPACITY)
+                    .run(in, ProductController::ParseCSVLine, this::AddProduct);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Adds a single parsed product to the store.
+     * 
+     * @param product The product to add.
+     */
+    private void AddProduct(Product product) {
+        products.add(product);
+        IndexProduct(product);
+
+        YearMonth month = YearMonth.from(product.getInvoiceDate().get(0));
+        partitions.computeIfAbsent(month, ProductPartition::new).add(product);
+    }
+
+    /**
+     * Adds a single product to the country and StockCode lookup structures.
+     * Its string columns are replaced by the shared dictionary instances and
+     * their codes are appended to the row columns, so products must be indexed
+     * in the same order as they appear in the products list.
+     * 
+     * @param product The product to index.
+     */
+    private void IndexProduct(Product product) {
+        int invoiceCode = invoiceNos.encode(product.getInvoiceNo().get(0));
+        int stockCode = stockCodes.encode(product.getStockCode());
+        int descriptionCode = descriptions.encode(product.getDescription());
+        int countryCode = countries.encode(product.getCountry().get(0));
+
+        product.getInvoiceNo().set(0, invoiceNos.decode(invoiceCode));
+        product.setStockCode(stockCodes.decode(stockCode));
+        product.setDescription(descriptions.decode(descriptionCode));
+        product.getCountry().set(0, countries.decode(countryCode));
+
+        rowStockCodes.add(stockCode);
+        rowCountries.add(countryCode);
+        rowInvoices.add(invoiceCode);
+
+        int customerID = product.getCustomerID().get(0);
+        rowCustomers.add(customerID == 0 ? -1 : customerIDs.encode(customerID));
+
+        LocalDateTime date = product.getInvoiceDate().get(0);
+        int quantity = product.getQuantity().get(0);
+        double revenue = quantity * product.getUnitPrice().get(0);
+        countryTrends.add(date, countryCode, quantity, revenue);
+        productTrends.add(date, stockCode, quantity, revenue);
+        uniqueCountries.set(countryCode);
+
+        while (productsMap.size() <= stockCode)
+            productsMap.add(null);
+
+        Product existingProduct = productsMap.get(stockCode);
+        if (existingProduct != null) {
+            existingProduct.getInvoiceNo().addAll(product.getInvoiceNo());
+            existingProduct.getQuantity().addAll(product.getQuantity());
+            existingProduct.getInvoiceDate().addAll(product.getInvoiceDate());
+            existingProduct.getUnitPrice().addAll(product.getUnitPrice());
+            existingProduct.getCustomerID().addAll(product.getCustomerID());
+            existingProduct.getCountry().addAll(product.getCountry());
+        } else {
+            productsMap.set(stockCode, new Product(product));
+        }
+    }
+
+    /**
+     * Collects the partitions that may hold transactions within the given range.
+     * Partitions whose min/max invoice dates lie outside the range are skipped.
+     * 
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return List of partitions that have to be considered.
+     */
+    private List<ProductPartition> PrunePartitions(LocalDateTime from, LocalDateTime to) {
+        List<ProductPartition> result = new ArrayList<>();
+        if (!from.isBefore(to))
+            return result;
+
+        for (ProductPartition partition : partitions
+                .subMap(YearMonth.from(from), true, YearMonth.from(to), true).values()) {
+            if (partition.overlaps(from, to))
+                result.add(partition);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a product was invoiced within the given range.
+     * 
+     * @param product The product to check.
+     * @param from    Start of the range (inclusive).
+     * @param to      End of the range (exclusive).
+     * @return true if the invoice date lies within the range.
+     */
+    private static boolean IsInvoicedBetween(Product product, LocalDateTime from, LocalDateTime to) {
+        LocalDateTime date = product.getInvoiceDate().get(0);
+        return !date.isBefore(from) && date.isBefore(to);
+    }
+
+    /**
+     * Finds the products invoiced within the given range. Only the partitions
+     * overlapping the range are scanned, in parallel.
+     * 
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return List of products ordered by partition.
+     */
+    public List<Product> FindProductsBetween(LocalDateTime from, LocalDateTime to) {
+        return PrunePartitions(from, to).parallelStream()
+                .flatMap(partition -> partition.isCoveredBy(from, to)
+                        ? partition.getProducts().stream()
+                        : partition.getProducts().stream().filter(p -> IsInvoicedBetween(p, from, to)))
+                .toList();
+    }
+
+    /**
+     * Calculates the total quantity of products sold within the given range.
+     * Fully covered partitions are answered from their pre-aggregates, the rest
+     * are scanned in parallel.
+     * 
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return Total quantity sold.
+     */
+    public long CountProductsSoldBetween(LocalDateTime from, LocalDateTime to) {
+        return PrunePartitions(from, to).parallelStream()
+                .mapToLong(partition -> partition.isCoveredBy(from, to)
+                        ? partition.getTotalQuantity()
+                        : partition.getProducts().stream()
+                                .filter(p -> IsInvoicedBetween(p, from, to))
+                                .mapToLong(p -> p.getQuantity().get(0))
+                                .sum())
+                .sum();
+    }
+
+    /**
+     * Calculates the total revenue within the given range.
+     * Fully covered partitions are answered from their pre-aggregates, the rest
+     * are scanned in parallel.
+     * 
+     * @param from Start of the range (inclusive).
+     * @param to   End of the range (exclusive).
+     * @return Total revenue.
+     */
+    public double CountRevenueBetween(LocalDateTime from, LocalDateTime to) {
+        return PrunePartitions(from, to).parallelStream()
+                .mapToDouble(partition -> partition.isCoveredBy(from, to)
+                        ? partition.getTotalRevenue()
+                        : partition.getProducts().stream()
+                                .filter(p -> IsInvoicedBetween(p, from, to))
+                                .mapToDouble(p -> p.getQuantity().get(0) * p.getUnitPrice().get(0))
+                                .sum())
+                .sum();
+    }
+
+    /**
+     * Evicts every partition older than the given month from memory and rebuilds
+     * the dictionaries and lookup structures from the remaining products, so
+     * that values only used by evicted products are released as well.
+     * 
+     * @param cutoff The oldest month to keep.
+     * @return The evicted partitions, so that they can be archived by the caller.
+     */
+    public List<ProductPartition> EvictPartitionsBefore(YearMonth cutoff) {
+        Map<YearMonth, ProductPartition> head = partitions.headMap(cutoff, false);
+        List<ProductPartition> evicted = new ArrayList<>(head.values());
+        if (evicted.isEmpty())
+            return evicted;
+
+        head.clear();
+        products.removeIf(p -> YearMonth.from(p.getInvoiceDate().get(0)).isBefore(cutoff));
+
+        totalProductsSold = new int[0];
+        totalRevenue = new double[0];
+        uniqueCountries.clear();
+        productsMap = new ArrayList<>();
+        invoiceNos = new StringDictionary();
+        stockCodes = new StringDictionary();
+        descriptions = new StringDictionary();
+        countries = new StringDictionary();
+        customerIDs = new IntDictionary();
+        rowStockCodes.clear();
+        rowCountries.clear();
+        rowInvoices.clear();
+        rowCustomers.clear();
+        countryTrends.clear();
+        productTrends.clear();
+        for (Product product : products) {
+            IndexProduct(product);
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Keeps a rolling retention window of the most recent months in memory and
+     * evicts every older partition.
+     * 
+     * @param months Number of months to keep, counted back from the latest one.
+     * @return The evicted partitions.
+     */
+    public List<ProductPartition> RetainLatestMonths(int months) {
+        if (partitions.isEmpty() || months <= 0)
+            return new ArrayList<>();
+        return EvictPartitionsBefore(partitions.lastKey().minusMonths(months - 1));
+    }
+
+    /**
+     * Writes the products of every partition older than the given month to a CSV
+     * file in the same format accepted by LoadFromCSV, then evicts them. The
+     * partitions are only evicted once the archive has been written completely.
+     * If the file already exists the products are appended to it, so repeated
+     * calls can share one archive; the header is only written to a new file.
+     * 
+     * @param cutoff   The oldest month to keep.
+     * @param fileName Name of the archive CSV file.
+     * @return Number of archived products.
+     * @throws IOException If the archive cannot be written, in which case no
+     *                     partition is evicted.
+     */
+    public int ArchivePartitionsBefore(YearMonth cutoff, String fileName) throws IOException {
+        int count = 0;
+        boolean newFile = new File(fileName).length() == 0;
+
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(fileName, true))) {
+            if (newFile) {
+                bw.write("InvoiceNo,StockCode,Description,Quantity,InvoiceDate,UnitPrice,CustomerID,Country");
+                bw.newLine();
+            }
+            for (ProductPartition partition : partitions.headMap(cutoff, false).values()) {
+                for (Product product : partition.getProducts()) {
+                    bw.write(FormatCSVLine(product));
+                    bw.newLine();
+                    count++;
+                }
+            }
+        }
+
+        EvictPartitionsBefore(cutoff);
+        return count;
+    }
+
+    /**
+     * Formats a single product transaction as a CSV line.
+     * 
+     * @param product The product to format.
+     * @return The CSV line.
+     */
+    private String FormatCSVLine(Product product) {
+        String description = product.getDescription();
+        if (description.indexOf(',') >= 0)
+            description = '"' + description + '"';
+
+        return String.join(",",
+                product.getInvoiceNo().get(0),
+                product.getStockCode(),
+                description,
+                String.valueOf(product.getQuantity().get(0)),
+                product.getInvoiceDate().get(0).format(CSV_DATE_FORMAT),
+                String.valueOf(product.getUnitPrice().get(0)),
+                String.valueOf(product.getCustomerID().get(0)),
+                product.getCountry().get(0));
+    }
+
     /**
      * Prints the list of products in a table format.
      * 
@@ -340,7 +1877,7 @@ class ProductController {
      */
     public void PrintUniqueCountries() {
         System.out.println("Unique Countries: ");
-        uniqueCountries.forEach(country -> System.out.println("- " + country));
+        uniqueCountries.stream().forEach(code -> System.out.println("- " + countries.decode(code)));
     }
 
     /**
@@ -350,11 +1887,12 @@ class ProductController {
      * @return Product object if found, null otherwise.
      */
     public Product SearchProduct(String stockCode) {
-        if (!productsMap.containsKey(stockCode)) {
+        int code = stockCodes.codeOf(stockCode);
+        if (code < 0 || productsMap.get(code) == null) {
             System.out.println("Product with StockCode '" + stockCode + "' not found!");
             return null;
         }
-        return productsMap.get(stockCode);
+        return productsMap.get(code);
     }
 
     /**
@@ -363,7 +1901,7 @@ class ProductController {
      * @param line The CSV line.
      * @return A Product object.
      */
-    private Product ParseCSVLine(String line) {
+    private static Product ParseCSVLine(String line) {
         String[] result = new String[8]; // Fixed 8 columns
         StringBuilder sb = new StringBuilder(line.length()); // Preallocate buffer
         boolean inQuotes = false;
@@ -388,7 +1926,7 @@ class ProductController {
                 result[1],
                 result[2],
                 Integer.parseInt(result[3]),
-                LocalDateTime.parse(result[4], DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
+                LocalDateTime.parse(result[4], CSV_DATE_FORMAT),
                 Double.parseDouble(result[5]),
                 result[6].isEmpty() ? 0 : (int) Double.parseDouble(result[6]),
                 result[7]);
@@ -398,11 +1936,12 @@ class ProductController {
      * Calculates the total number of products sold based on StockCode.
      */
     public void CountTotalProductsSold() {
-        for (Product product : products) {
-            String c = product.getStockCode();
-            int v = product.getQuantity().get(0);
+        totalProductsSold = new int[stockCodes.size()];
+        for (int i = 0, len = products.size(); i < len; i++) {
+            int c = rowStockCodes.get(i);
+            int v = products.get(i).getQuantity().get(0);
 
-            totalProductsSold.put(c, totalProductsSold.getOrDefault(c, 0) + v);
+            totalProductsSold[c] += v;
         }
     }
 
@@ -410,11 +1949,227 @@ class ProductController {
      * Calculates the total revenue per country.
      */
     public void CountTotalRevenue() {
-        for (Product product : products) {
-            String c = product.getCountry().get(0);
-            Double v = product.getQuantity().get(0) * product.getUnitPrice().get(0);
+        totalRevenue = new double[countries.size()];
+        for (int i = 0, len = products.size(); i < len; i++) {
+            Product product = products.get(i);
+            int c = rowCountries.get(i);
+            double v = product.getQuantity().get(0) * product.getUnitPrice().get(0);
+
+            totalRevenue[c] += v;
+        }
+    }
+
+    /**
+     * Calculates the revenue of a country within the given range, at hour
+     * precision, using the pre-aggregated rollups.
+     * 
+     * @param country The country.
+     * @param from    Start of the range (inclusive).
+     * @param to      End of the range (exclusive).
+     * @return Total revenue of the country.
+     */
+    public double CountRevenueBetween(String country, LocalDateTime from, LocalDateTime to) {
+        return countryTrends.queryRevenue(countries.codeOf(country), from, to);
+    }
+
+    /**
+     * Calculates the quantity sold of a product within the given range, at hour
+     * precision, using the pre-aggregated rollups.
+     * 
+     * @param stockCode The stock code of the product.
+     * @param from      Start of the range (inclusive).
+     * @param to        End of the range (exclusive).
+     * @return Total quantity sold of the product.
+     */
+    public long CountProductsSoldBetween(String stockCode, LocalDateTime from, LocalDateTime to) {
+        return productTrends.queryQuantity(stockCodes.codeOf(stockCode), from, to);
+    }
+
+    /**
+     * Prints the revenue trend of a country, one row per hour, day or month.
+     * 
+     * @param country The country.
+     * @param from    Start of the range (inclusive).
+     * @param to      End of the range (exclusive).
+     * @param unit    Granularity of the trend: HOURS, DAYS or MONTHS.
+     */
+    public void PrintRevenueTrend(String country, LocalDateTime from, LocalDateTime to, ChronoUnit unit) {
+        int code = countries.codeOf(country);
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+
+        System.out.println("\n========== REVENUE TREND: " + country + " ==========");
+        PrintTrend(countryTrends.series(from, to, unit), unit, "Revenue",
+                cell -> cell.getRevenue(code) != 0 ? nf.format(cell.getRevenue(code)) : null);
+        System.out.println(String.format("| %-16s | %-20s |", "Total",
+                nf.format(CountRevenueBetween(country, from, to))));
+        System.out.println("+------------------+----------------------+");
+    }
+
+    /**
+     * Prints the sales trend of a product, one row per hour, day or month.
+     * 
+     * @param stockCode The stock code of the product.
+     * @param from      Start of the range (inclusive).
+     * @param to        End of the range (exclusive).
+     * @param unit      Granularity of the trend: HOURS, DAYS or MONTHS.
+     */
+    public void PrintProductsSoldTrend(String stockCode, LocalDateTime from, LocalDateTime to, ChronoUnit unit) {
+        int code = stockCodes.codeOf(stockCode);
+        NumberFormat nf = NumberFormat.getInstance(Locale.US);
+
+        System.out.println("\n======= PRODUCTS SOLD TREND: " + stockCode + " =======");
+        PrintTrend(productTrends.series(from, to, unit), unit, "Products Sold",
+                cell -> cell.getQuantity(code) != 0 ? nf.format(cell.getQuantity(code)) : null);
+        System.out.println(String.format("| %-16s | %-20s |", "Total",
+                nf.format(CountProductsSoldBetween(stockCode, from, to))));
+        System.out.println("+------------------+----------------------+");
+    }
+
+    /**
+     * Prints the rows of a trend table, skipping buckets without a value.
+     * 
+     * @param series The buckets to print.
+     * @param unit   Granularity of the buckets.
+     * @param header Header of the value column.
+     * @param value  Formats the value of a bucket, or returns null to skip it.
+     */
+    private void PrintTrend(NavigableMap<Long, RollupCell> series, ChronoUnit unit, String header,
+            Function<RollupCell, String> value) {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern(
+                unit == ChronoUnit.HOURS ? "yyyy-MM-dd HH:00" : unit == ChronoUnit.DAYS ? "yyyy-MM-dd" : "yyyy-MM");
+
+        System.out.println("+------------------+----------------------+");
+        System.out.println(String.format("| %-16s | %-20s |", "Period", header));
+        System.out.println("+------------------+----------------------+");
+        series.forEach((bucket, cell) -> {
+            String text = value.apply(cell);
+            if (text != null)
+                System.out.println(String.format("| %-16s | %-20s |",
+                        TimeSeriesRollup.startOf(bucket, unit).format(format), text));
+        });
+        System.out.println("+------------------+----------------------+");
+    }
+
+    /**
+     * Computes the recency, frequency and monetary metrics of every customer in a
+     * single parallel pass over the products, then scores each metric by
+     * quintile. Recency is measured in days from the day after the latest
+     * invoice, frequency counts distinct non-cancelled invoices and monetary is
+     * the net amount spent. Rows with an unknown customer (CustomerID 0) are
+     * left out.
+     * 
+     * @return List of customer metrics, ordered by customer ID.
+     */
+    public List<CustomerRFM> AnalyzeCustomerRFM() {
+        return ScoreCustomerRFM(AccumulateCustomerRFM());
+    }
+
+    /**
+     * Builds the customer metrics of a finished RFM pass and scores them.
+     * 
+     * @param total The merged accumulator, or null if there are no products.
+     * @return List of customer metrics, ordered by customer ID.
+     */
+    private List<CustomerRFM> ScoreCustomerRFM(RFMAccumulator total) {
+        if (total == null)
+            return new ArrayList<>();
+
+        long referenceDay = partitions.lastEntry().getValue().getMaxInvoiceDate().toLocalDate().toEpochDay() + 1;
+        List<CustomerRFM> customers = total.toCustomers(referenceDay, customerIDs);
+
+        double[] recency = customers.stream().mapToDouble(CustomerRFM::getRecency).sorted().toArray();
+        double[] frequency = customers.stream().mapToDouble(CustomerRFM::getFrequency).sorted().toArray();
+        double[] monetary = customers.stream().mapToDouble(CustomerRFM::getMonetary).sorted().toArray();
+        for (CustomerRFM customer : customers) {
+            customer.setScores(
+                    6 - QuintileOf(recency, customer.getRecency()),
+                    QuintileOf(frequency, customer.getFrequency()),
+                    QuintileOf(monetary, customer.getMonetary()));
+        }
+
+        return customers;
+    }
+
+    /**
+     * Runs the RFM pass: the products are split into chunks that are accumulated
+     * in parallel and merged afterwards.
+     * 
+     * @return The merged accumulator, or null if there are no products.
+     */
+    private RFMAccumulator AccumulateCustomerRFM() {
+        if (products.isEmpty())
+            return null;
+
+        int customers = customerIDs.size();
+        int invoices = invoiceNos.size();
+        boolean[] cancelled = new boolean[invoices];
+        for (int i = 0; i < invoices; i++) {
+            cancelled[i] = invoiceNos.decode(i).startsWith("C");
+        }
 
-            totalRevenue.put(c, totalRevenue.getOrDefault(c, 0.0) + v);
+        int rows = products.size();
+        int chunks = Math.max(1, Math.min(rows / 4096, ForkJoinPool.getCommonPoolParallelism() * 4));
+        return IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+            RFMAccumulator acc = new RFMAccumulator(customers, invoices);
+            int start = (int) ((long) rows * chunk / chunks);
+            int end = (int) ((long) rows * (chunk + 1) / chunks);
+            for (int i = start; i < end; i++) {
+                Product product = products.get(i);
+                int invoiceCode = rowInvoices.get(i);
+                acc.add(rowCustomers.get(i), invoiceCode, cancelled[invoiceCode],
+                        product.getInvoiceDate().get(0).toLocalDate().toEpochDay(),
+                        product.getQuantity().get(0) * product.getUnitPrice().get(0));
+            }
+            return acc;
+        }).reduce(RFMAccumulator::merge).orElse(null);
+    }
+
+    /**
+     * Scores a value by the quintile of its rank among all values, so that equal
+     * values always receive the same score.
+     * 
+     * @param sorted All values in ascending order.
+     * @param value  The value to score.
+     * @return Score from 1 (lowest fifth) to 5 (highest fifth).
+     */
+    private static int QuintileOf(double[] sorted, double value) {
+        int lo = 0, hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] <= value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return Math.max(1, (int) Math.ceil(5.0 * lo / sorted.length));
+    }
+
+    /**
+     * Prints the RFM metrics and segment of every customer, best segments first,
+     * followed by the transactions that have no customer.
+     */
+    public void PrintCustomerRFM() {
+        RFMAccumulator total = AccumulateCustomerRFM();
+        List<CustomerRFM> customers = ScoreCustomerRFM(total);
+        customers.sort(Comparator
+                .comparingInt((CustomerRFM c) -> c.getRecencyScore() + c.getFrequencyScore() + c.getMonetaryScore())
+                .thenComparingDouble(CustomerRFM::getMonetary).reversed());
+
+        System.out.println("\n================== CUSTOMER RFM TABLE ==================");
+        System.out.println("+------------+---------+-----------+----------------+---------+");
+        System.out.println(String.format("| %-10s | %-7s | %-9s | %-14s | %-7s |",
+                "CustomerID", "Recency", "Frequency", "Monetary", "Segment"));
+        System.out.println("+------------+---------+-----------+----------------+---------+");
+        for (CustomerRFM customer : customers) {
+            System.out.println(customer.toString());
+        }
+        System.out.println("+------------+---------+-----------+----------------+---------+");
+
+        if (total != null) {
+            NumberFormat nf = NumberFormat.getInstance(Locale.US);
+            System.out.println("Customers: " + nf.format(customers.size())
+                    + ", transactions without CustomerID: " + nf.format(total.getUnknownRows())
+                    + " (revenue " + nf.format(total.getUnknownRevenue()) + ")");
         }
     }
 
@@ -431,18 +2186,31 @@ class ProductController {
         System.out.println("+------------------+----------------------+");
         System.out.println(String.format("| %-16s | %-20s |", "StockCode", "Total Products Sold"));
         System.out.println("+------------------+----------------------+");
-        totalProductsSold.forEach(
-                (StockCode, total) -> System.out
-                        .println(String.format("| %-16s | %-20s |", StockCode, nf.format(total))));
+        for (int c = 0; c < totalProductsSold.length; c++) {
+            if (productsMap.get(c) != null)
+                System.out.println(String.format("| %-16s | %-20s |",
+                        stockCodes.decode(c), nf.format(totalProductsSold[c])));
+        }
         System.out.println("+------------------+----------------------+");
 
         System.out.println("\n============= TOTAL REVENUE TABLE =============");
         System.out.println("+-----------------------+---------------------+");
         System.out.println(String.format("| %-21s | %-19s |", "Country", "Total Revenue"));
         System.out.println("+-----------------------+---------------------+");
-        totalRevenue.forEach(
-                (Country, a) -> System.out.println(String.format("| %-21s | %-19s |", Country, nf.format(a))));
+        uniqueCountries.stream().forEach(
+                c -> System.out.println(String.format("| %-21s | %-19s |",
+                        countries.decode(c), nf.format(totalRevenue[c]))));
         System.out.println("+-----------------------+---------------------+");
+
+        System.out.println("\n================= MONTHLY SALES TREND TABLE =================");
+        System.out.println("+------------+----------------------+---------------------+");
+        System.out.println(String.format("| %-10s | %-20s | %-19s |", "Month", "Total Products Sold", "Total Revenue"));
+        System.out.println("+------------+----------------------+---------------------+");
+        countryTrends.series(LocalDateTime.MIN, LocalDateTime.MAX, ChronoUnit.MONTHS).forEach(
+                (month, cell) -> System.out.println(String.format("| %-10s | %-20s | %-19s |",
+                        YearMonth.from(TimeSeriesRollup.startOf(month, ChronoUnit.MONTHS)),
+                        nf.format(cell.getTotalQuantity()), nf.format(cell.getTotalRevenue()))));
+        System.out.println("+------------+----------------------+---------------------+");
     }
 }
 
@@ -470,6 +2238,9 @@ public class ClassPrep4 {
                 System.out.println("| 3. Search Product by StockCode               |");
                 System.out.println("| 4. Generate Business Report                  |");
                 System.out.println("| 5. Exit                                      |");
+                System.out.println("| 6. Generate Sales Report by Date Range       |");
+                System.out.println("| 7. Generate Trend Report                     |");
+                System.out.println("| 8. Generate Customer RFM Report              |");
                 System.out.println("|                                              |");
                 System.out.println("+----------------------------------------------+");
                 System.out.print("Enter your choice: ");
@@ -496,10 +2267,74 @@ public class ClassPrep4 {
                 } else if (choice == 5) {
                     System.out.println("Goodbye!");
                     break;
+                } else if (choice == 6) {
+                    LocalDate start = ReadDate(sc, "Enter start date (yyyy-MM-dd): ");
+                    LocalDate end = start == null ? null : ReadDate(sc, "Enter end date (yyyy-MM-dd): ");
+                    if (end == null) {
+                        System.out.println("Invalid choice. Please try again.");
+                        continue;
+                    }
+                    LocalDateTime from = start.atStartOfDay();
+                    LocalDateTime to = end.plusDays(1).atStartOfDay();
+
+                    NumberFormat nf = NumberFormat.getInstance(Locale.US);
+                    System.out.println(
+                            "\nTransactions  : " + nf.format(controller.FindProductsBetween(from, to).size()));
+                    System.out.println("Products Sold : " + nf.format(controller.CountProductsSoldBetween(from, to)));
+                    System.out.println("Total Revenue : " + nf.format(controller.CountRevenueBetween(from, to)));
+                } else if (choice == 7) {
+                    System.out.print("Trend of (1) Country revenue or (2) StockCode products sold: ");
+                    String dimension = sc.next();
+                    if (!dimension.equals("1") && !dimension.equals("2")) {
+                        System.out.println("Invalid choice. Please try again.");
+                        continue;
+                    }
+                    System.out.print(dimension.equals("1") ? "Enter Country: " : "Enter StockCode: ");
+                    sc.nextLine();
+                    String key = sc.nextLine();
+
+                    LocalDate start = ReadDate(sc, "Enter start date (yyyy-MM-dd): ");
+                    LocalDate end = start == null ? null : ReadDate(sc, "Enter end date (yyyy-MM-dd): ");
+                    ChronoUnit unit = null;
+                    if (end != null) {
+                        System.out.print("Enter granularity (HOURS, DAYS or MONTHS): ");
+                        String granularity = sc.next().toUpperCase();
+                        if (granularity.equals("HOURS") || granularity.equals("DAYS") || granularity.equals("MONTHS"))
+                            unit = ChronoUnit.valueOf(granularity);
+                    }
+                    if (unit == null) {
+                        System.out.println("Invalid choice. Please try again.");
+                        continue;
+                    }
+                    LocalDateTime from = start.atStartOfDay();
+                    LocalDateTime to = end.plusDays(1).atStartOfDay();
+
+                    if (dimension.equals("1"))
+                        controller.PrintRevenueTrend(key, from, to, unit);
+                    else
+                        controller.PrintProductsSoldTrend(key, from, to, unit);
+                } else if (choice == 8) {
+                    controller.PrintCustomerRFM();
                 } else {
                     System.out.println("Invalid choice. Please try again.");
                 }
             } while (true);
         }
     }
+
+    /**
+     * Prompts for a date in yyyy-MM-dd format.
+     * 
+     * @param sc     Scanner to read the input from.
+     * @param prompt Prompt to print.
+     * @return The entered date, or null if the input is not a valid date.
+     */
+    private static LocalDate ReadDate(Scanner sc, String prompt) {
+        System.out.print(prompt);
+        try {
+            return LocalDate.parse(sc.next());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+package com.pbo2.preps;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class CSVPipelineTests {
+    private HttpServer server;
+
+    @AfterEach
+    void stopServer() {
+        if (server != null)
+            server.stop(0);
+    }
+
+    /**
+     * Serves the body over a local HTTP server in small chunks, like a network
+     * stream, optionally cutting the response off halfway.
+     */
+    private InputStream serve(byte[] body, int chunk, boolean truncate) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/data.csv", exchange -> {
+            // A chunked response that ends without its last chunk is an error for the client
+            exchange.sendResponseHeaders(200, truncate ? 0 : body.length);
+            OutputStream os = exchange.getResponseBody();
+            int limit = truncate ? body.length / 2 : body.length;
+            for (int i = 0; i < limit; i += chunk) {
+                os.write(body, i, Math.min(chunk, limit - i));
+                os.flush();
+            }
+            if (truncate)
+                exchange.getHttpContext().getServer().stop(0);
+            else
+                os.close();
+        });
+        server.start();
+
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/data.csv").toURL().openStream();
+    }
+
+    private static String sampleCSV(int rows) {
+        var sb = new StringBuilder("InvoiceNo,StockCode,Description,Quantity\n");
+        var random = new Random(42);
+        for (int i = 0; i < rows; i++) {
+            sb.append(536365 + i).append(",85123A,\"WHITE, HANGING ").append("X".repeat(random.nextInt(80)))
+                    .append("\",").append(random.nextInt(50)).append(i % 7 == 0 ? "\r\n" : "\n");
+        }
+        // A line longer than a whole batch
+        sb.append("999999,LONG,").append("Y".repeat(200_000)).append(",1");
+        return sb.toString();
+    }
+
+    private static List<String> sequentialParse(String csv) throws IOException {
+        List<String> rows = new ArrayList<>();
+        try (var br = new BufferedReader(new StringReader(csv))) {
+            br.readLine(); // skip header
+            String line;
+            while ((line = br.readLine()) != null) {
+                rows.add(line);
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    void outputMatchesSequentialParse() throws Exception {
+        var csv = sampleCSV(50_000);
+        List<String> rows = new ArrayList<>();
+
+        try (var in = serve(csv.getBytes(StandardCharsets.UTF_8), 1460, false)) {
+            new CSVPipeline(4, 4).run(in, line -> line, rows::add);
+        }
+
+        assertEquals(sequentialParse(csv), rows);
+    }
+
+    @Test
+    void parseErrorReachesCaller() throws Exception {
+        var csv = sampleCSV(20_000);
+
+        try (var in = serve(csv.getBytes(StandardCharsets.UTF_8), 1460, false)) {
+            var pipeline = new CSVPipeline(4, 4);
+            assertThrows(NumberFormatException.class, () -> pipeline.run(in, line -> {
+                if (line.startsWith("546365,"))
+                    throw new NumberFormatException(line);
+                return line;
+            }, row -> {
+            }));
+        }
+    }
+
+    @Test
+    void readFailureReachesCaller() throws Exception {
+        var csv = sampleCSV(20_000);
+
+        try (var in = serve(csv.getBytes(StandardCharsets.UTF_8), 1460, true)) {
+            var pipeline = new CSVPipeline(4, 4);
+            assertThrows(IOException.class, () -> pipeline.run(in, line -> line, row -> {
+            }));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.pbo2.preps;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.*;
+import java.util.*;
+import java.util.function.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ProductControllerTests {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String[] COUNTRIES = { "United Kingdom", "France", "Germany", "EIRE", "Spain" };
+
+    @TempDir
+    Path tempDir;
+
+    private final List<String[]> rows = new ArrayList<>();
+    private ProductController controller;
+
+    /**
+     * Builds rows from December 2010 to June 2011. StockCode OLD-* only appears
+     * before 2011, NEW-* only from March 2011.
+     */
+    @BeforeEach
+    void loadController() throws IOException {
+        var random = new Random(3);
+        var sb = new StringBuilder("InvoiceNo,StockCode,Description,Quantity,InvoiceDate,UnitPrice,CustomerID,Country\n");
+        var date = LocalDateTime.of(2010, 12, 1, 8, 26);
+        for (int i = 0; date.isBefore(LocalDateTime.of(2011, 7, 1, 0, 0)); i++) {
+            String stockCode = date.getYear() == 2010 ? "OLD-" + random.nextInt(5)
+                    : date.getMonthValue() >= 3 && random.nextBoolean() ? "NEW-" + random.nextInt(5)
+                    : String.valueOf(85120 + random.nextInt(10));
+            String[] row = {
+                    String.valueOf(536365 + i / 3),
+                    stockCode,
+                    "ITEM " + stockCode + (i % 4 == 0 ? ", BOXED" : ""),
+                    String.valueOf(random.nextInt(30) - 3),
+                    date.format(DATE_FORMAT),
+                    String.valueOf((1 + random.nextInt(400)) / 20.0),
+                    i % 6 == 0 ? "0" : String.valueOf(12346 + random.nextInt(40)),
+                    COUNTRIES[random.nextInt(COUNTRIES.length)] };
+            rows.add(row);
+
+            String description = row[2].indexOf(',') >= 0 ? '"' + row[2] + '"' : row[2];
+            sb.append(String.join(",", row[0], row[1], description, row[3], row[4], row[5], row[6], row[7]))
+                    .append('\n');
+            date = date.plusMinutes(20 + random.nextInt(200));
+        }
+
+        controller = new ProductController();
+        controller.LoadFromStream(new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static LocalDateTime dateOf(String[] row) {
+        return LocalDateTime.parse(row[4], DATE_FORMAT);
+    }
+
+    private List<String[]> rowsBetween(LocalDateTime from, LocalDateTime to) {
+        return rows.stream().filter(r -> !dateOf(r).isBefore(from) && dateOf(r).isBefore(to)).toList();
+    }
+
+    private static String keyOf(String[] row) {
+        return String.join("|", row[0], row[1], row[2], row[3], row[4],
+                String.valueOf(Double.parseDouble(row[5])), row[6], row[7]);
+    }
+
+    private static String keyOf(Product p) {
+        return String.join("|", p.getInvoiceNo().get(0), p.getStockCode(), p.getDescription(),
+                String.valueOf(p.getQuantity().get(0)), p.getInvoiceDate().get(0).format(DATE_FORMAT),
+                String.valueOf(p.getUnitPrice().get(0)), String.valueOf(p.getCustomerID().get(0)),
+                p.getCountry().get(0));
+    }
+
+    private static List<String> sortedKeys(List<Product> products) {
+        return products.stream().map(ProductControllerTests::keyOf).sorted().toList();
+    }
+
+    private static String captureOutput(Runnable action) {
+        var buffer = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(buffer, true, StandardCharsets.UTF_8));
+        try {
+            action.run();
+        } finally {
+            System.setOut(out);
+        }
+        return buffer.toString(StandardCharsets.UTF_8);
+    }
+
+    private void assertRange(LocalDateTime from, LocalDateTime to) {
+        var expected = rowsBetween(from, to);
+        assertEquals(expected.stream().map(ProductControllerTests::keyOf).sorted().toList(),
+                sortedKeys(controller.FindProductsBetween(from, to)), from + " - " + to);
+
+        ToLongFunction<String[]> quantity = r -> Integer.parseInt(r[3]);
+        ToDoubleFunction<String[]> revenue = r -> Integer.parseInt(r[3]) * Double.parseDouble(r[5]);
+        assertEquals(expected.stream().mapToLong(quantity).sum(), controller.CountProductsSoldBetween(from, to));
+        assertEquals(expected.stream().mapToDouble(revenue).sum(), controller.CountRevenueBetween(from, to), 1e-6);
+
+        // The per-country and per-product queries are answered at hour precision
+        var hourly = rowsBetween(from.truncatedTo(ChronoUnit.HOURS), to.truncatedTo(ChronoUnit.HOURS));
+        for (String country : COUNTRIES) {
+            assertEquals(hourly.stream().filter(r -> r[7].equals(country)).mapToDouble(revenue).sum(),
+                    controller.CountRevenueBetween(country, from, to), 1e-6);
+        }
+        for (String stockCode : List.of("OLD-1", "85123", "NEW-2")) {
+            assertEquals(hourly.stream().filter(r -> r[1].equals(stockCode)).mapToLong(quantity).sum(),
+                    controller.CountProductsSoldBetween(stockCode, from, to));
+        }
+    }
+
+    @Test
+    void rangeQueriesMatchFilteredScan() {
+        assertRange(LocalDateTime.MIN, LocalDateTime.MAX);
+        assertRange(LocalDateTime.of(2011, 1, 1, 0, 0), LocalDateTime.of(2011, 4, 1, 0, 0));
+        assertRange(LocalDateTime.of(2010, 12, 14, 0, 0), LocalDateTime.of(2011, 2, 2, 0, 0));
+        assertRange(LocalDateTime.of(2011, 3, 5, 0, 0), LocalDateTime.of(2011, 3, 6, 0, 0));
+        assertRange(LocalDateTime.of(2011, 5, 1, 0, 0), LocalDateTime.of(2011, 4, 1, 0, 0));
+
+        var random = new Random(5);
+        var start = LocalDateTime.of(2010, 11, 20, 0, 0);
+        for (int i = 0; i < 50; i++) {
+            var from = start.plusMinutes(random.nextInt(60 * 24 * 230));
+            assertRange(from, from.plusMinutes(random.nextInt(60 * 24 * 90)));
+        }
+    }
+
+    @Test
+    void archiveReloadsToSameRows() throws IOException {
+        Path archive = tempDir.resolve("archive.csv");
+        var firstCutoff = YearMonth.of(2011, 1);
+        var secondCutoff = YearMonth.of(2011, 3);
+
+        int first = controller.ArchivePartitionsBefore(firstCutoff, archive.toString());
+        int second = controller.ArchivePartitionsBefore(secondCutoff, archive.toString());
+
+        var archived = rowsBetween(LocalDateTime.MIN, secondCutoff.atDay(1).atStartOfDay());
+        assertEquals(rowsBetween(LocalDateTime.MIN, firstCutoff.atDay(1).atStartOfDay()).size(), first);
+        assertEquals(archived.size(), first + second);
+
+        // The second call appends to the archive instead of truncating it
+        var lines = Files.readAllLines(archive, StandardCharsets.UTF_8);
+        assertEquals(archived.size() + 1, lines.size());
+        assertEquals(1, lines.stream().filter(l -> l.startsWith("InvoiceNo,")).count());
+
+        var reloaded = new ProductController();
+        reloaded.LoadFromCSV(archive.toUri().toString());
+        assertEquals(archived.stream().map(ProductControllerTests::keyOf).sorted().toList(),
+                sortedKeys(reloaded.FindProductsBetween(LocalDateTime.MIN, LocalDateTime.MAX)));
+        assertTrue(controller.FindProductsBetween(LocalDateTime.MIN, secondCutoff.atDay(1).atStartOfDay()).isEmpty());
+    }
+
+    @Test
+    void lookupsAndReportsWorkAfterEviction() {
+        controller.GenerateBusinessReport();
+        controller.EvictPartitionsBefore(YearMonth.of(2011, 1));
+        rows.removeIf(r -> dateOf(r).getYear() == 2010);
+        assertRange(LocalDateTime.MIN, LocalDateTime.MAX);
+
+        String output = captureOutput(() -> {
+            assertNull(controller.SearchProduct("OLD-1"));
+            assertEquals("NEW-2", controller.SearchProduct("NEW-2").getStockCode());
+            assertEquals("85123", controller.SearchProduct("85123").getStockCode());
+        });
+        assertTrue(output.contains("'OLD-1' not found"));
+
+        String report = captureOutput(controller::GenerateBusinessReport);
+        assertFalse(report.contains("OLD-"));
+        assertFalse(report.contains("2010-12"));
+        assertTrue(report.contains("NEW-2"));
+        assertTrue(report.contains("2011-06"));
+
+        // Evicting the remaining partitions leaves an empty but usable controller
+        controller.EvictPartitionsBefore(YearMonth.of(2012, 1));
+        assertTrue(controller.FindProductsBetween(LocalDateTime.MIN, LocalDateTime.MAX).isEmpty());
+        captureOutput(() -> {
+            assertNull(controller.SearchProduct("NEW-2"));
+            controller.GenerateBusinessReport();
+        });
+    }
+}
@@ -0,0 +1,126 @@
+package com.pbo2.preps;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.Test;
+
+public class RingBufferTests {
+    @Test
+    void oneProducerManyConsumersLoseAndDuplicateNothing() throws InterruptedException {
+        var items = 200_000;
+        var ring = new RingBuffer<Integer>(8);
+        var seen = new AtomicIntegerArray(items);
+        var failure = new AtomicReference<Throwable>();
+
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            consumers.add(new Thread(() -> {
+                try {
+                    Integer item;
+                    while ((item = ring.take()) != null) {
+                        seen.incrementAndGet(item);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        consumers.forEach(Thread::start);
+
+        for (int i = 0; i < items; i++) {
+            ring.put(i);
+        }
+        ring.close();
+
+        for (Thread consumer : consumers) {
+            consumer.join(30_000);
+            assertFalse(consumer.isAlive());
+        }
+        assertNull(failure.get());
+        for (int i = 0; i < items; i++) {
+            assertEquals(1, seen.get(i), "item " + i);
+        }
+    }
+
+    @Test
+    void sameReferencePutRepeatedlyIsNeverLost() throws InterruptedException {
+        var items = 200_000;
+        var item = "same";
+        var ring = new RingBuffer<String>(2);
+        var taken = new AtomicInteger();
+        var failure = new AtomicReference<Throwable>();
+
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            consumers.add(new Thread(() -> {
+                try {
+                    String value;
+                    while ((value = ring.take()) != null) {
+                        assertSame(item, value);
+                        taken.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        consumers.forEach(Thread::start);
+
+        for (int i = 0; i < items; i++) {
+            ring.put(item);
+        }
+        ring.close();
+
+        for (Thread consumer : consumers) {
+            consumer.join(30_000);
+            assertFalse(consumer.isAlive());
+        }
+        assertNull(failure.get());
+        assertEquals(items, taken.get());
+    }
+
+    @Test
+    void closeDrainsRemainingItemsBeforeEndOfStream() throws InterruptedException {
+        var ring = new RingBuffer<String>(4);
+        ring.put("a");
+        ring.put("b");
+        ring.put("c");
+        ring.close();
+
+        assertEquals("a", ring.take());
+        assertEquals("b", ring.take());
+        assertEquals("c", ring.take());
+        assertNull(ring.take());
+        assertNull(ring.take());
+    }
+
+    @Test
+    void producerWaitsWhileFull() throws InterruptedException {
+        var ring = new RingBuffer<Integer>(2);
+        ring.put(1);
+        ring.put(2);
+
+        var producer = new Thread(() -> {
+            try {
+                ring.put(3);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        assertEquals(1, ring.take());
+        producer.join(5_000);
+        assertFalse(producer.isAlive());
+        ring.close();
+
+        assertEquals(2, ring.take());
+        assertEquals(3, ring.take());
+        assertNull(ring.take());
+    }
+}
@@ -0,0 +1,168 @@
+package com.pbo2.preps;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TimeSeriesRollupTests {
+    private static final int CODES = 20;
+    private static final LocalDateTime START = LocalDateTime.of(2010, 12, 1, 0, 0);
+
+    private final List<LocalDateTime> dates = new ArrayList<>();
+    private final List<Integer> codes = new ArrayList<>();
+    private final List<Integer> quantities = new ArrayList<>();
+    private final List<Double> revenues = new ArrayList<>();
+    private TimeSeriesRollup rollup;
+
+    @BeforeEach
+    void fillRollup() {
+        rollup = new TimeSeriesRollup();
+        var random = new Random(7);
+        var date = START;
+        // Roughly 14 months, crossing the 2011/2012 year boundary
+        while (date.isBefore(LocalDateTime.of(2012, 2, 1, 0, 0))) {
+            date = date.plusMinutes(1 + random.nextInt(90));
+            int code = random.nextInt(CODES);
+            int quantity = random.nextInt(25) - 2;
+            double revenue = quantity * (1 + random.nextInt(40)) * 0.25;
+
+            dates.add(date);
+            codes.add(code);
+            quantities.add(quantity);
+            revenues.add(revenue);
+            rollup.add(date, code, quantity, revenue);
+        }
+    }
+
+    private long expectedQuantity(int code, LocalDateTime from, LocalDateTime to) {
+        var lo = from.truncatedTo(ChronoUnit.HOURS);
+        var hi = to.truncatedTo(ChronoUnit.HOURS);
+        long total = 0;
+        for (int i = 0; i < dates.size(); i++) {
+            if (!dates.get(i).isBefore(lo) && dates.get(i).isBefore(hi) && (code < 0 || codes.get(i) == code))
+                total += quantities.get(i);
+        }
+        return total;
+    }
+
+    private double expectedRevenue(int code, LocalDateTime from, LocalDateTime to) {
+        var lo = from.truncatedTo(ChronoUnit.HOURS);
+        var hi = to.truncatedTo(ChronoUnit.HOURS);
+        double total = 0;
+        for (int i = 0; i < dates.size(); i++) {
+            if (!dates.get(i).isBefore(lo) && dates.get(i).isBefore(hi) && (code < 0 || codes.get(i) == code))
+                total += revenues.get(i);
+        }
+        return total;
+    }
+
+    private void assertRange(LocalDateTime from, LocalDateTime to) {
+        var all = rollup.query(from, to);
+        assertEquals(expectedQuantity(-1, from, to), all.getTotalQuantity(), from + " - " + to);
+        assertEquals(expectedRevenue(-1, from, to), all.getTotalRevenue(), 1e-6, from + " - " + to);
+
+        for (int code = 0; code < CODES; code++) {
+            assertEquals(expectedQuantity(code, from, to), rollup.queryQuantity(code, from, to));
+            assertEquals(expectedRevenue(code, from, to), rollup.queryRevenue(code, from, to), 1e-6);
+            assertEquals(expectedQuantity(code, from, to), all.getQuantity(code));
+        }
+    }
+
+    @Test
+    void rangeWithinOneHour() {
+        assertRange(LocalDateTime.of(2011, 3, 14, 10, 0), LocalDateTime.of(2011, 3, 14, 11, 0));
+        // Both ends truncate to the same hour, so the range is empty at hour precision
+        assertEquals(0, rollup.query(LocalDateTime.of(2011, 3, 14, 10, 5), LocalDateTime.of(2011, 3, 14, 10, 55))
+                .getTotalQuantity());
+    }
+
+    @Test
+    void rangeWithinOneDay() {
+        assertRange(LocalDateTime.of(2011, 3, 14, 3, 0), LocalDateTime.of(2011, 3, 14, 17, 0));
+        assertRange(LocalDateTime.of(2011, 3, 14, 0, 0), LocalDateTime.of(2011, 3, 15, 0, 0));
+    }
+
+    @Test
+    void rangeCrossingMonthBoundaries() {
+        assertRange(LocalDateTime.of(2011, 1, 30, 5, 0), LocalDateTime.of(2011, 2, 2, 7, 0));
+        assertRange(LocalDateTime.of(2011, 1, 20, 5, 30), LocalDateTime.of(2011, 4, 3, 7, 45));
+        assertRange(LocalDateTime.of(2011, 2, 1, 0, 0), LocalDateTime.of(2011, 5, 1, 0, 0));
+    }
+
+    @Test
+    void rangeCrossingYearBoundaries() {
+        assertRange(LocalDateTime.of(2011, 12, 31, 22, 0), LocalDateTime.of(2012, 1, 1, 2, 0));
+        assertRange(LocalDateTime.of(2010, 12, 3, 5, 0), LocalDateTime.of(2012, 1, 28, 7, 0));
+        assertRange(LocalDateTime.MIN, LocalDateTime.MAX);
+    }
+
+    @Test
+    void randomRangesMatchBruteForce() {
+        var random = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            var from = START.plusMinutes(random.nextInt(60 * 24 * 430));
+            var to = from.plusMinutes(random.nextInt(60 * 24 * 200));
+            assertRange(from, to);
+        }
+    }
+
+    @Test
+    void emptyAndInvertedRanges() {
+        var date = LocalDateTime.of(2011, 6, 1, 12, 0);
+        assertEquals(0, rollup.query(date, date).getTotalQuantity());
+        assertEquals(0, rollup.query(date.plusDays(30), date).getTotalQuantity());
+        assertEquals(0, rollup.queryQuantity(3, date.plusDays(30), date));
+        assertEquals(0, rollup.queryRevenue(3, date, date), 0);
+        assertTrue(rollup.series(date.plusDays(30), date, ChronoUnit.DAYS).isEmpty());
+    }
+
+    @Test
+    void unknownCodesAreZero() {
+        var from = LocalDateTime.MIN;
+        var to = LocalDateTime.MAX;
+        assertEquals(0, rollup.queryQuantity(-1, from, to));
+        assertEquals(0, rollup.queryRevenue(-1, from, to), 0);
+        assertEquals(0, rollup.queryQuantity(CODES + 5, from, to));
+        assertEquals(0, rollup.query(from, to).getRevenue(-1), 0);
+    }
+
+    @Test
+    void seriesReturnsOneBucketPerMonth() {
+        var series = rollup.series(LocalDateTime.of(2011, 1, 1, 0, 0), LocalDateTime.of(2012, 1, 1, 0, 0),
+                ChronoUnit.MONTHS);
+        assertEquals(12, series.size());
+        series.forEach((bucket, cell) -> {
+            var start = TimeSeriesRollup.startOf(bucket, ChronoUnit.MONTHS);
+            assertEquals(expectedQuantity(-1, start, start.plusMonths(1)), cell.getTotalQuantity());
+        });
+    }
+
+    @Test
+    void cellGrowsPastInitialCapacity() {
+        var cell = new RollupCell();
+        for (int round = 0; round < 3; round++) {
+            for (int code = 0; code < 100; code++) {
+                cell.add(code * 37, code, code * 0.5);
+            }
+        }
+
+        for (int code = 0; code < 100; code++) {
+            assertEquals(3L * code, cell.getQuantity(code * 37));
+            assertEquals(1.5 * code, cell.getRevenue(code * 37), 1e-9);
+        }
+        assertEquals(0, cell.getQuantity(1));
+        assertEquals(3L * 4950, cell.getTotalQuantity());
+
+        var merged = new RollupCell();
+        merged.add(0, 1, 1.0);
+        merged.addAll(cell);
+        assertEquals(1, merged.getQuantity(0));
+        assertEquals(3L * 99, merged.getQuantity(99 * 37));
+        assertEquals(3L * 4950 + 1, merged.getTotalQuantity());
+    }
+}